@@ -0,0 +1,110 @@
+"""
+Flink Checkpoint Exporter
+Exports per-operator checkpoint duration and size from the JobManager REST API to Prometheus.
+
+Flink's metric reporters only carry job-level checkpoint metrics (lastCheckpointDuration,
+lastCheckpointSize); the per-operator breakdown exists only in the REST checkpoint details.
+"""
+
+import os
+import time
+import logging
+
+import requests
+from prometheus_client import start_http_server
+from prometheus_client.core import GaugeMetricFamily, REGISTRY
+
+FLINK_REST_URL = os.getenv("FLINK_REST_URL", "http://localhost:8081").rstrip("/")
+EXPORTER_PORT = int(os.getenv("EXPORTER_PORT", "9250"))
+REQUEST_TIMEOUT_SECONDS = float(os.getenv("REQUEST_TIMEOUT_SECONDS", "5"))
+
+# Configure logging
+logging.basicConfig(
+    level=logging.INFO,
+    format='%(asctime)s - %(name)s - %(levelname)s - %(message)s'
+)
+logger = logging.getLogger(__name__)
+
+LABELS = ["job_id", "job_name", "operator_id", "operator_name"]
+
+
+def get(path: str) -> dict:
+    response = requests.get(f"{FLINK_REST_URL}{path}", timeout=REQUEST_TIMEOUT_SECONDS)
+    response.raise_for_status()
+    return response.json()
+
+
+class CheckpointCollector:
+    """Reads the latest completed checkpoint of every running job on each scrape"""
+
+    def collect(self):
+        checkpoint_id = GaugeMetricFamily(
+            "flink_operator_checkpoint_id",
+            "Id of the latest completed checkpoint the operator metrics come from", labels=LABELS)
+        end_to_end = GaugeMetricFamily(
+            "flink_operator_checkpoint_end_to_end_duration_ms",
+            "Time from checkpoint trigger until the operator's last subtask acknowledged", labels=LABELS)
+        sync_max = GaugeMetricFamily(
+            "flink_operator_checkpoint_sync_duration_max_ms",
+            "Slowest synchronous snapshot phase across the operator's subtasks", labels=LABELS)
+        async_max = GaugeMetricFamily(
+            "flink_operator_checkpoint_async_duration_max_ms",
+            "Slowest asynchronous snapshot upload across the operator's subtasks", labels=LABELS)
+        alignment_max = GaugeMetricFamily(
+            "flink_operator_checkpoint_alignment_duration_max_ms",
+            "Longest barrier alignment across the operator's subtasks", labels=LABELS)
+        start_delay_max = GaugeMetricFamily(
+            "flink_operator_checkpoint_start_delay_max_ms",
+            "Longest delay until a subtask received the first barrier", labels=LABELS)
+        checkpointed_size = GaugeMetricFamily(
+            "flink_operator_checkpoint_checkpointed_size_bytes",
+            "Bytes the operator uploaded for the checkpoint (incremental delta)", labels=LABELS)
+        state_size = GaugeMetricFamily(
+            "flink_operator_checkpoint_state_size_bytes",
+            "Full state size of the operator referenced by the checkpoint", labels=LABELS)
+        up = GaugeMetricFamily(
+            "flink_checkpoint_exporter_up", "Whether the last scrape of the Flink REST API succeeded")
+
+        try:
+            for job in get("/jobs")["jobs"]:
+                if job["status"] != "RUNNING":
+                    continue
+                job_id = job["id"]
+                details = get(f"/jobs/{job_id}")
+                latest = (get(f"/jobs/{job_id}/checkpoints").get("latest") or {}).get("completed")
+                if not latest:
+                    continue
+                tasks = get(f"/jobs/{job_id}/checkpoints/details/{latest['id']}").get("tasks", {})
+
+                for vertex in details["vertices"]:
+                    task = tasks.get(vertex["id"])
+                    if task is None:
+                        continue
+                    summary = get(
+                        f"/jobs/{job_id}/checkpoints/details/{latest['id']}/subtasks/{vertex['id']}"
+                    ).get("summary", {})
+                    labels = [job_id, details["name"], vertex["id"], vertex["name"]]
+
+                    checkpoint_id.add_metric(labels, latest["id"])
+                    end_to_end.add_metric(labels, task["end_to_end_duration"])
+                    sync_max.add_metric(labels, summary["checkpoint_duration"]["sync"]["max"])
+                    async_max.add_metric(labels, summary["checkpoint_duration"]["async"]["max"])
+                    alignment_max.add_metric(labels, summary["alignment"]["duration"]["max"])
+                    start_delay_max.add_metric(labels, summary["start_delay"]["max"])
+                    checkpointed_size.add_metric(labels, task["checkpointed_size"])
+                    state_size.add_metric(labels, task["state_size"])
+            up.add_metric([], 1)
+        except (requests.RequestException, KeyError) as e:
+            logger.error(f"Failed to read checkpoint details from {FLINK_REST_URL}: {e}")
+            up.add_metric([], 0)
+
+        yield from (checkpoint_id, end_to_end, sync_max, async_max, alignment_max,
+                    start_delay_max, checkpointed_size, state_size, up)
+
+
+if __name__ == "__main__":
+    REGISTRY.register(CheckpointCollector())
+    start_http_server(EXPORTER_PORT)
+    logger.info(f"Exporting checkpoint metrics of {FLINK_REST_URL} on :{EXPORTER_PORT}/metrics")
+    while True:
+        time.sleep(3600)
@@ -2,30 +2,89 @@ package com.telemetry.flink;
 
 import org.apache.flink.api.common.eventtime.WatermarkStrategy;
 import org.apache.flink.api.common.functions.AggregateFunction;
+import org.apache.flink.api.common.functions.MapFunction;
+import org.apache.flink.api.common.serialization.SerializationSchema;
+import org.apache.flink.api.common.state.ListState;
+import org.apache.flink.api.common.state.ListStateDescriptor;
+import org.apache.flink.api.common.state.ValueState;
+import org.apache.flink.api.common.state.ValueStateDescriptor;
+import org.apache.flink.api.common.typeinfo.TypeInformation;
+import org.apache.flink.api.common.typeinfo.Types;
+import org.apache.flink.api.common.typeutils.SimpleTypeSerializerSnapshot;
+import org.apache.flink.api.common.typeutils.TypeSerializerSnapshot;
+import org.apache.flink.api.common.typeutils.base.TypeSerializerSingleton;
+import org.apache.flink.api.java.functions.KeySelector;
+import org.apache.flink.configuration.Configuration;
+import org.apache.flink.connector.base.DeliveryGuarantee;
+import org.apache.flink.connector.kafka.sink.KafkaRecordSerializationSchema;
+import org.apache.flink.connector.kafka.sink.KafkaSink;
 import org.apache.flink.connector.kafka.source.KafkaSource;
 import org.apache.flink.connector.kafka.source.enumerator.initializer.OffsetsInitializer;
 import org.apache.flink.connector.kafka.source.reader.deserializer.KafkaRecordDeserializationSchema;
+import org.apache.flink.core.memory.DataInputView;
+import org.apache.flink.core.memory.DataOutputView;
+import org.apache.flink.metrics.Counter;
+import org.apache.flink.runtime.state.StateInitializationContext;
+import org.apache.flink.runtime.state.StateSnapshotContext;
 import org.apache.flink.streaming.api.datastream.DataStream;
+import org.apache.flink.streaming.api.datastream.SingleOutputStreamOperator;
 import org.apache.flink.streaming.api.environment.StreamExecutionEnvironment;
+import org.apache.flink.streaming.api.functions.ProcessFunction;
+import org.apache.flink.streaming.api.functions.windowing.ProcessWindowFunction;
+import org.apache.flink.streaming.api.operators.AbstractStreamOperator;
+import org.apache.flink.streaming.api.operators.ChainingStrategy;
+import org.apache.flink.streaming.api.operators.OneInputStreamOperator;
+import org.apache.flink.streaming.api.watermark.Watermark;
 import org.apache.flink.streaming.api.windowing.assigners.TumblingEventTimeWindows;
 import org.apache.flink.streaming.api.windowing.time.Time;
-import org.apache.flink.streaming.connectors.kafka.FlinkKafkaProducer;
+import org.apache.flink.streaming.api.windowing.windows.TimeWindow;
+import org.apache.flink.streaming.runtime.streamrecord.StreamRecord;
+import org.apache.flink.types.StringValue;
+import org.apache.flink.util.Collector;
+import org.apache.flink.util.OutputTag;
 import org.apache.flink.formats.avro.registry.confluent.ConfluentRegistryAvroDeserializationSchema;
 import org.apache.flink.formats.avro.registry.confluent.ConfluentRegistryAvroSerializationSchema;
+import com.telemetry.flink.state.SerializerTypeInfo;
+import com.telemetry.flink.state.StateSettings;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 
 public class AggregatorJob {
 
     private static final String KAFKA_BOOTSTRAP = System.getenv("KAFKA_BOOTSTRAP_SERVERS");
     private static final String SCHEMA_REGISTRY = System.getenv("SCHEMA_REGISTRY_URL");
+    private static final long ALLOWED_LATENESS_SECONDS = Long.parseLong(
+            System.getenv().getOrDefault("AGGREGATOR_ALLOWED_LATENESS_SECONDS", "3600"));
+
+    static final String SCOPE_DEVICE = "device";
+    static final String SCOPE_LOCATION = "location";
+    static final String SCOPE_ZONE = "zone";
+    static final String SCOPE_FLEET = "fleet";
+
+    // Events that arrive after a window's allowed lateness has expired
+    static final OutputTag<ValidatedTelemetry> LATE_EVENTS = new OutputTag<ValidatedTelemetry>("late-events") {};
+
+    // Hand-written layout; the POJO layout would repeat every metric name in four maps per entry
+    static final TypeInformation<MetricPartial> METRIC_PARTIAL_TYPE =
+            new SerializerTypeInfo<>(MetricPartial.class, MetricPartialSerializer.INSTANCE);
+
+    // What each window firing changed since the previous one; the level above merges only these
+    static final OutputTag<MetricPartial> ROLLUP_DELTAS = new OutputTag<>("rollup-deltas", METRIC_PARTIAL_TYPE);
 
     public static void main(String[] args) throws Exception {
         StreamExecutionEnvironment env = StreamExecutionEnvironment.getExecutionEnvironment();
         env.enableCheckpointing(60000);
+        StateSettings.configure(env);
 
         KafkaSource<ValidatedTelemetry> source = KafkaSource.<ValidatedTelemetry>builder()
                 .setBootstrapServers(KAFKA_BOOTSTRAP)
@@ -39,55 +98,634 @@ public class AggregatorJob {
         DataStream<ValidatedTelemetry> stream = env.fromSource(source, WatermarkStrategy.forBoundedOutOfOrderness(Duration.ofSeconds(5))
                 .withTimestampAssigner((event, timestamp) -> event.getTimestamp()), "Processed Source");
 
-        DataStream<AggregatedMetric> aggregated = stream
-                .keyBy(t -> t.getDeviceId())
+        // Windows fire on the watermark as before; late events re-fire the window until
+        // the lateness bound expires and each firing is emitted as a new version.
+        SingleOutputStreamOperator<MetricPartial> devicePartials = stream
+                .keyBy(t -> t.getDeviceId(), Types.STRING)
                 .window(TumblingEventTimeWindows.of(Time.seconds(5)))
-                .aggregate(new MetricAggregator());
+                .allowedLateness(Time.seconds(ALLOWED_LATENESS_SECONDS))
+                .sideOutputLateData(LATE_EVENTS)
+                .aggregate(new MetricAggregator(), new VersionedWindowFunction(SCOPE_DEVICE),
+                        METRIC_PARTIAL_TYPE, METRIC_PARTIAL_TYPE, METRIC_PARTIAL_TYPE)
+                .name("Device Aggregates");
+
+        // Rollups merge the deltas of the level below, never raw events. Device deltas are
+        // pre-combined per location inside each subtask before the shuffle, so a hot location
+        // receives one partial per upstream subtask and window instead of one per device.
+        DataStream<MetricPartial> deviceDeltas = devicePartials.getSideOutput(ROLLUP_DELTAS)
+                .transform("Location Pre-Combine", METRIC_PARTIAL_TYPE, new LocalRollupCombiner(AggregatorJob::locationKey));
+        SingleOutputStreamOperator<MetricPartial> locationPartials = rollup(deviceDeltas, SCOPE_LOCATION, AggregatorJob::locationKey)
+                .name("Location Aggregates");
+        SingleOutputStreamOperator<MetricPartial> zonePartials = rollup(locationPartials.getSideOutput(ROLLUP_DELTAS),
+                SCOPE_ZONE, MetricPartial::getZone)
+                .name("Zone Aggregates");
+        SingleOutputStreamOperator<MetricPartial> fleetPartials = rollup(zonePartials.getSideOutput(ROLLUP_DELTAS),
+                SCOPE_FLEET, p -> SCOPE_FLEET)
+                .name("Fleet Aggregates");
 
         Properties producerProps = new Properties();
-        producerProps.setProperty("bootstrap.servers", KAFKA_BOOTSTRAP);
-        FlinkKafkaProducer<AggregatedMetric> kafkaSink = new FlinkKafkaProducer<>(
-                "aggregated-metrics",
-                ConfluentRegistryAvroSerializationSchema.forSpecific(AggregatedMetric.class, "aggregated-metrics-value", SCHEMA_REGISTRY),
-                producerProps,
-                FlinkKafkaProducer.Semantic.EXACTLY_ONCE);
+        producerProps.setProperty("transaction.timeout.ms", "900000");
+
+        // Keyed by scope + id + window on compacted topics so later versions replace earlier ones
+        devicePartials
+                .map(new ToAggregatedMetric())
+                .sinkTo(aggregatedSink("aggregated-metrics", "aggregator", producerProps));
 
-        aggregated.addSink(kafkaSink);
+        locationPartials
+                .union(zonePartials, fleetPartials)
+                .map(new ToAggregatedMetric())
+                .sinkTo(aggregatedSink("aggregated-rollups", "aggregator-rollups", producerProps));
+
+        KafkaSink<ValidatedTelemetry> lateSink = KafkaSink.<ValidatedTelemetry>builder()
+                .setBootstrapServers(KAFKA_BOOTSTRAP)
+                .setKafkaProducerConfig(producerProps)
+                .setRecordSerializer(KafkaRecordSerializationSchema.<ValidatedTelemetry>builder()
+                        .setTopic("late-telemetry")
+                        .setValueSerializationSchema(ConfluentRegistryAvroSerializationSchema.forSpecific(
+                                ValidatedTelemetry.class, "late-telemetry-value", SCHEMA_REGISTRY))
+                        .build())
+                .setDeliveryGuarantee(DeliveryGuarantee.EXACTLY_ONCE)
+                .setTransactionalIdPrefix("aggregator-late")
+                .build();
+
+        devicePartials.getSideOutput(LATE_EVENTS)
+                .process(new LateEventCounter())
+                .sinkTo(lateSink);
 
         env.execute("Telemetry Aggregator");
     }
 
-    public static class MetricAggregator implements AggregateFunction<ValidatedTelemetry, Map<String, Double[]>, AggregatedMetric> {
+    static SingleOutputStreamOperator<MetricPartial> rollup(DataStream<MetricPartial> childDeltas, String scope,
+                                                            KeySelector<MetricPartial, String> keySelector) {
+        // Child deltas carry their window's max timestamp, so they land in the aligned window
+        // here and late child corrections arrive as late elements within the same lateness bound.
+        return childDeltas
+                .keyBy(keySelector, Types.STRING)
+                .window(TumblingEventTimeWindows.of(Time.seconds(5)))
+                .allowedLateness(Time.seconds(ALLOWED_LATENESS_SECONDS))
+                .aggregate(new RollupAggregator(), new VersionedWindowFunction(scope),
+                        METRIC_PARTIAL_TYPE, METRIC_PARTIAL_TYPE, METRIC_PARTIAL_TYPE);
+    }
+
+    static String locationKey(MetricPartial partial) {
+        return partial.getZone() + "/" + partial.getLocation();
+    }
+
+    static KafkaSink<AggregatedMetric> aggregatedSink(String topic, String transactionalIdPrefix, Properties producerProps) {
+        return KafkaSink.<AggregatedMetric>builder()
+                .setBootstrapServers(KAFKA_BOOTSTRAP)
+                .setKafkaProducerConfig(producerProps)
+                .setRecordSerializer(KafkaRecordSerializationSchema.<AggregatedMetric>builder()
+                        .setTopic(topic)
+                        .setKeySerializationSchema(new WindowKeySerializationSchema())
+                        .setValueSerializationSchema(ConfluentRegistryAvroSerializationSchema.forSpecific(
+                                AggregatedMetric.class, topic + "-value", SCHEMA_REGISTRY))
+                        .build())
+                .setDeliveryGuarantee(DeliveryGuarantee.EXACTLY_ONCE)
+                .setTransactionalIdPrefix(transactionalIdPrefix)
+                .build();
+    }
+
+    /**
+     * Mergeable sum/count/min/max partial for one key and window. Used as the device-level
+     * accumulator and as the unit that rollup levels combine. Sums and counts are weighted by
+     * each event's sample weight, so windows thinned by load shedding still estimate the totals.
+     */
+    public static class MetricPartial {
+        private String scope;
+        private String key;
+        private String zone;
+        private String location;
+        private long windowStart;
+        private long windowEnd;
+        private long version;
+        private double count;
+        private Map<String, Double> sums = new HashMap<>();
+        private Map<String, Double> counts = new HashMap<>();
+        private Map<String, Double> mins = new HashMap<>();
+        private Map<String, Double> maxs = new HashMap<>();
+
+        public MetricPartial() {
+        }
+
+        public MetricPartial(MetricPartial other) {
+            scope = other.scope;
+            key = other.key;
+            zone = other.zone;
+            location = other.location;
+            windowStart = other.windowStart;
+            windowEnd = other.windowEnd;
+            version = other.version;
+            count = other.count;
+            sums = new HashMap<>(other.sums);
+            counts = new HashMap<>(other.counts);
+            mins = new HashMap<>(other.mins);
+            maxs = new HashMap<>(other.maxs);
+        }
+
+        /**
+         * What {@code current} adds on top of {@code previous}, an earlier firing of the same window.
+         * Window contents only grow, so sums and counts are differences and min/max are the current
+         * values, which merge idempotently into a rollup that already holds the previous firing.
+         */
+        public static MetricPartial delta(MetricPartial current, MetricPartial previous) {
+            MetricPartial delta = new MetricPartial(current);
+            if (previous != null) {
+                delta.count -= previous.count;
+                previous.sums.forEach((metric, value) -> delta.sums.merge(metric, -value, Double::sum));
+                previous.counts.forEach((metric, value) -> delta.counts.merge(metric, -value, Double::sum));
+            }
+            return delta;
+        }
+
+        public void add(String metric, double value, double weight) {
+            sums.merge(metric, value * weight, Double::sum);
+            counts.merge(metric, weight, Double::sum);
+            mins.merge(metric, value, Math::min);
+            maxs.merge(metric, value, Math::max);
+        }
+
+        // Merges the statistics only; zone/location agreement is decided by the caller
+        public void merge(MetricPartial other) {
+            count += other.count;
+            other.sums.forEach((metric, value) -> sums.merge(metric, value, Double::sum));
+            other.counts.forEach((metric, value) -> counts.merge(metric, value, Double::sum));
+            other.mins.forEach((metric, value) -> mins.merge(metric, value, Math::min));
+            other.maxs.forEach((metric, value) -> maxs.merge(metric, value, Math::max));
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public void setScope(String scope) {
+            this.scope = scope;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public void setKey(String key) {
+            this.key = key;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public void setZone(String zone) {
+            this.zone = zone;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public void setLocation(String location) {
+            this.location = location;
+        }
+
+        public long getWindowStart() {
+            return windowStart;
+        }
+
+        public void setWindowStart(long windowStart) {
+            this.windowStart = windowStart;
+        }
+
+        public long getWindowEnd() {
+            return windowEnd;
+        }
+
+        public void setWindowEnd(long windowEnd) {
+            this.windowEnd = windowEnd;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+
+        public double getCount() {
+            return count;
+        }
+
+        public void setCount(double count) {
+            this.count = count;
+        }
+
+        public Map<String, Double> getSums() {
+            return sums;
+        }
+
+        public void setSums(Map<String, Double> sums) {
+            this.sums = sums;
+        }
+
+        public Map<String, Double> getCounts() {
+            return counts;
+        }
+
+        public void setCounts(Map<String, Double> counts) {
+            this.counts = counts;
+        }
+
+        public Map<String, Double> getMins() {
+            return mins;
+        }
+
+        public void setMins(Map<String, Double> mins) {
+            this.mins = mins;
+        }
+
+        public Map<String, Double> getMaxs() {
+            return maxs;
+        }
+
+        public void setMaxs(Map<String, Double> maxs) {
+            this.maxs = maxs;
+        }
+    }
+
+    /**
+     * State layout for {@link MetricPartial}: the fixed fields, then one entry per metric with its
+     * name written once, a presence bitmask and the sum, count, min and max that are present.
+     */
+    public static final class MetricPartialSerializer extends TypeSerializerSingleton<MetricPartial> {
+        public static final MetricPartialSerializer INSTANCE = new MetricPartialSerializer();
+
+        private static final int HAS_SUM = 1;
+        private static final int HAS_COUNT = 1 << 1;
+        private static final int HAS_MIN = 1 << 2;
+        private static final int HAS_MAX = 1 << 3;
+
+        @Override
+        public boolean isImmutableType() {
+            return false;
+        }
+
+        @Override
+        public MetricPartial createInstance() {
+            return new MetricPartial();
+        }
+
+        @Override
+        public MetricPartial copy(MetricPartial from) {
+            return new MetricPartial(from);
+        }
+
+        @Override
+        public MetricPartial copy(MetricPartial from, MetricPartial reuse) {
+            return copy(from);
+        }
+
+        @Override
+        public int getLength() {
+            return -1;
+        }
+
+        @Override
+        public void serialize(MetricPartial record, DataOutputView target) throws IOException {
+            StringValue.writeString(record.getScope(), target);
+            StringValue.writeString(record.getKey(), target);
+            StringValue.writeString(record.getZone(), target);
+            StringValue.writeString(record.getLocation(), target);
+            target.writeLong(record.getWindowStart());
+            target.writeLong(record.getWindowEnd());
+            target.writeLong(record.getVersion());
+            target.writeDouble(record.getCount());
+
+            Set<String> metrics = new HashSet<>(record.getSums().keySet());
+            metrics.addAll(record.getCounts().keySet());
+            metrics.addAll(record.getMins().keySet());
+            metrics.addAll(record.getMaxs().keySet());
+            target.writeInt(metrics.size());
+            for (String metric : metrics) {
+                Double sum = record.getSums().get(metric);
+                Double count = record.getCounts().get(metric);
+                Double min = record.getMins().get(metric);
+                Double max = record.getMaxs().get(metric);
+                StringValue.writeString(metric, target);
+                target.writeByte((sum != null ? HAS_SUM : 0) | (count != null ? HAS_COUNT : 0)
+                        | (min != null ? HAS_MIN : 0) | (max != null ? HAS_MAX : 0));
+                for (Double value : new Double[]{sum, count, min, max}) {
+                    if (value != null) {
+                        target.writeDouble(value);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public MetricPartial deserialize(DataInputView source) throws IOException {
+            MetricPartial record = new MetricPartial();
+            record.setScope(StringValue.readString(source));
+            record.setKey(StringValue.readString(source));
+            record.setZone(StringValue.readString(source));
+            record.setLocation(StringValue.readString(source));
+            record.setWindowStart(source.readLong());
+            record.setWindowEnd(source.readLong());
+            record.setVersion(source.readLong());
+            record.setCount(source.readDouble());
+
+            int metrics = source.readInt();
+            for (int i = 0; i < metrics; i++) {
+                String metric = StringValue.readString(source);
+                int present = source.readByte();
+                if ((present & HAS_SUM) != 0) {
+                    record.getSums().put(metric, source.readDouble());
+                }
+                if ((present & HAS_COUNT) != 0) {
+                    record.getCounts().put(metric, source.readDouble());
+                }
+                if ((present & HAS_MIN) != 0) {
+                    record.getMins().put(metric, source.readDouble());
+                }
+                if ((present & HAS_MAX) != 0) {
+                    record.getMaxs().put(metric, source.readDouble());
+                }
+            }
+            return record;
+        }
+
+        @Override
+        public MetricPartial deserialize(MetricPartial reuse, DataInputView source) throws IOException {
+            return deserialize(source);
+        }
+
+        @Override
+        public void copy(DataInputView source, DataOutputView target) throws IOException {
+            serialize(deserialize(source), target);
+        }
+
+        @Override
+        public TypeSerializerSnapshot<MetricPartial> snapshotConfiguration() {
+            return new MetricPartialSerializerSnapshot();
+        }
+
+        public static final class MetricPartialSerializerSnapshot extends SimpleTypeSerializerSnapshot<MetricPartial> {
+            public MetricPartialSerializerSnapshot() {
+                super(() -> INSTANCE);
+            }
+        }
+    }
+
+    public static class MetricAggregator implements AggregateFunction<ValidatedTelemetry, MetricPartial, MetricPartial> {
         @Override
-        public Map<String, Double[]> createAccumulator() {
-            return new HashMap<>();
+        public MetricPartial createAccumulator() {
+            return new MetricPartial();
         }
 
         @Override
-        public Map<String, Double[]> add(ValidatedTelemetry value, Map<String, Double[]> accumulator) {
+        public MetricPartial add(ValidatedTelemetry value, MetricPartial accumulator) {
+            // Pinned to the first event of the window so every version of this device window
+            // lands in the same rollup bucket and replaces, rather than duplicates, the last one
+            if (accumulator.getZone() == null) {
+                accumulator.setZone(value.getDeviceMetadata().getZone());
+                accumulator.setLocation(value.getDeviceMetadata().getLocation());
+            }
+            accumulator.setCount(accumulator.getCount() + value.getSampleWeight());
             for (Map.Entry<String, Double> entry : value.getMetrics().entrySet()) {
-                Double[] stats = accumulator.getOrDefault(entry.getKey(), new Double[]{0.0, 0.0});
-                stats[0] += entry.getValue();
-                stats[1] += 1;
-                accumulator.put(entry.getKey(), stats);
+                accumulator.add(entry.getKey(), entry.getValue(), value.getSampleWeight());
+            }
+            return accumulator;
+        }
+
+        @Override
+        public MetricPartial getResult(MetricPartial accumulator) {
+            return accumulator;
+        }
+
+        @Override
+        public MetricPartial merge(MetricPartial a, MetricPartial b) {
+            if (a.getZone() == null) {
+                a.setZone(b.getZone());
+                a.setLocation(b.getLocation());
             }
+            a.merge(b);
+            return a;
+        }
+    }
+
+    /**
+     * Sums child deltas for one rollup key and window. A late correction of a child arrives as
+     * the delta of its new events only, so it is added once instead of replacing a stored copy
+     * of the child, and the accumulator stays a single partial however many children there are.
+     */
+    public static class RollupAggregator implements AggregateFunction<MetricPartial, MetricPartial, MetricPartial> {
+        @Override
+        public MetricPartial createAccumulator() {
+            return new MetricPartial();
+        }
+
+        @Override
+        public MetricPartial add(MetricPartial value, MetricPartial accumulator) {
+            combine(accumulator, value);
             return accumulator;
         }
 
         @Override
-        public AggregatedMetric getResult(Map<String, Double[]> accumulator) {
+        public MetricPartial getResult(MetricPartial accumulator) {
+            return accumulator;
+        }
+
+        @Override
+        public MetricPartial merge(MetricPartial a, MetricPartial b) {
+            if (b.getCount() > 0) {
+                combine(a, b);
+            }
+            return a;
+        }
+
+        // Zone/location are kept only while every child agrees; once they differ they stay null
+        static void combine(MetricPartial accumulator, MetricPartial child) {
+            if (accumulator.getCount() == 0) {
+                accumulator.setZone(child.getZone());
+                accumulator.setLocation(child.getLocation());
+            } else {
+                if (!Objects.equals(accumulator.getZone(), child.getZone())) {
+                    accumulator.setZone(null);
+                }
+                if (!Objects.equals(accumulator.getLocation(), child.getLocation())) {
+                    accumulator.setLocation(null);
+                }
+            }
+            accumulator.merge(child);
+        }
+    }
+
+    /**
+     * Stamps each window firing with its scope, key, bounds and a per-window version.
+     * The first firing on the watermark is version 0; every late firing within the
+     * allowed lateness increments it, so consumers keep the highest version per key.
+     * The change since the previous firing goes to {@link #ROLLUP_DELTAS} for the level above.
+     */
+    public static class VersionedWindowFunction extends ProcessWindowFunction<MetricPartial, MetricPartial, String, TimeWindow> {
+        private final ValueStateDescriptor<MetricPartial> lastEmittedDescriptor =
+                new ValueStateDescriptor<>("last-emitted", METRIC_PARTIAL_TYPE);
+        private final String scope;
+
+        private transient Counter resultsEmitted;
+        private transient Counter correctionsEmitted;
+
+        public VersionedWindowFunction(String scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public void open(Configuration parameters) throws Exception {
+            resultsEmitted = getRuntimeContext().getMetricGroup().counter("windowResultsEmitted");
+            correctionsEmitted = getRuntimeContext().getMetricGroup().counter("lateCorrectionsEmitted");
+        }
+
+        @Override
+        public void process(String key, Context context, Iterable<MetricPartial> elements, Collector<MetricPartial> out) throws Exception {
+            ValueState<MetricPartial> lastEmitted = context.windowState().getState(lastEmittedDescriptor);
+            MetricPartial previous = lastEmitted.value();
+            long version = previous == null ? 0L : previous.getVersion() + 1;
+
+            MetricPartial partial = elements.iterator().next();
+            partial.setScope(scope);
+            partial.setKey(key);
+            partial.setWindowStart(context.window().getStart());
+            partial.setWindowEnd(context.window().getEnd());
+            partial.setVersion(version);
+
+            resultsEmitted.inc();
+            if (version > 0) {
+                correctionsEmitted.inc();
+            }
+            out.collect(partial);
+            context.output(ROLLUP_DELTAS, MetricPartial.delta(partial, previous));
+            // Copied because heap state backends may hand out the live accumulator
+            lastEmitted.update(new MetricPartial(partial));
+        }
+
+        @Override
+        public void clear(Context context) throws Exception {
+            context.windowState().getState(lastEmittedDescriptor).clear();
+        }
+    }
+
+    /**
+     * Pre-combines rollup deltas per (rollup key, window) inside one subtask, ahead of the keyBy.
+     * On-time deltas are held until the watermark passes their window, which is when the device
+     * windows fire, and are emitted as one partial each; late corrections pass through at once.
+     * The buffer is kept in operator state so held deltas survive a restore.
+     */
+    public static class LocalRollupCombiner extends AbstractStreamOperator<MetricPartial>
+            implements OneInputStreamOperator<MetricPartial, MetricPartial> {
+        private final KeySelector<MetricPartial, String> keySelector;
+
+        private transient Map<String, MetricPartial> buffer;
+        private transient ListState<MetricPartial> bufferState;
+        private transient long currentWatermark;
+
+        public LocalRollupCombiner(KeySelector<MetricPartial, String> keySelector) {
+            this.keySelector = keySelector;
+            setChainingStrategy(ChainingStrategy.ALWAYS);
+        }
+
+        @Override
+        public void initializeState(StateInitializationContext context) throws Exception {
+            super.initializeState(context);
+            buffer = new HashMap<>();
+            currentWatermark = Long.MIN_VALUE;
+            bufferState = context.getOperatorStateStore().getListState(
+                    new ListStateDescriptor<>("local-rollup-buffer", METRIC_PARTIAL_TYPE));
+            for (MetricPartial held : bufferState.get()) {
+                hold(held);
+            }
+        }
+
+        @Override
+        public void processElement(StreamRecord<MetricPartial> element) throws Exception {
+            if (element.getValue().getWindowEnd() - 1 <= currentWatermark) {
+                output.collect(element);
+            } else {
+                hold(element.getValue());
+            }
+        }
+
+        @Override
+        public void processWatermark(Watermark mark) throws Exception {
+            currentWatermark = mark.getTimestamp();
+            Iterator<MetricPartial> held = buffer.values().iterator();
+            while (held.hasNext()) {
+                MetricPartial partial = held.next();
+                if (partial.getWindowEnd() - 1 <= currentWatermark) {
+                    output.collect(new StreamRecord<>(partial, partial.getWindowEnd() - 1));
+                    held.remove();
+                }
+            }
+            super.processWatermark(mark);
+        }
+
+        @Override
+        public void snapshotState(StateSnapshotContext context) throws Exception {
+            super.snapshotState(context);
+            bufferState.update(new ArrayList<>(buffer.values()));
+        }
+
+        private void hold(MetricPartial delta) throws Exception {
+            MetricPartial combined = buffer.computeIfAbsent(
+                    keySelector.getKey(delta) + "|" + delta.getWindowStart(), k -> new MetricPartial());
+            combined.setWindowStart(delta.getWindowStart());
+            combined.setWindowEnd(delta.getWindowEnd());
+            RollupAggregator.combine(combined, delta);
+        }
+    }
+
+    public static class ToAggregatedMetric implements MapFunction<MetricPartial, AggregatedMetric> {
+        @Override
+        public AggregatedMetric map(MetricPartial partial) throws Exception {
             AggregatedMetric agg = new AggregatedMetric();
             Map<String, Double> avgs = new HashMap<>();
-            for (Map.Entry<String, Double[]> entry : accumulator.entrySet()) {
-                avgs.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+            for (Map.Entry<String, Double> entry : partial.getSums().entrySet()) {
+                avgs.put(entry.getKey(), entry.getValue() / partial.getCounts().get(entry.getKey()));
             }
+            agg.setScope(partial.getScope());
+            agg.setKey(partial.getKey());
+            agg.setDeviceId(SCOPE_DEVICE.equals(partial.getScope()) ? partial.getKey() : "");
+            agg.setTimestamp(partial.getWindowEnd() - 1);
+            agg.setWindowStart(partial.getWindowStart());
+            agg.setWindowEnd(partial.getWindowEnd());
             agg.setAvgMetrics(avgs);
+            agg.setMinMetrics(new HashMap<>(partial.getMins()));
+            agg.setMaxMetrics(new HashMap<>(partial.getMaxs()));
+            agg.setCount(Math.round(partial.getCount()));
+            agg.setVersion(partial.getVersion());
             return agg;
         }
+    }
 
+    /**
+     * Upsert key for aggregated results: {@code <scope>|<key>|<window_start>}.
+     */
+    public static class WindowKeySerializationSchema implements SerializationSchema<AggregatedMetric> {
         @Override
-        public Map<String, Double[]> merge(Map<String, Double[]> a, Map<String, Double[]> b) {
-            return a;
+        public byte[] serialize(AggregatedMetric element) {
+            return (element.getScope() + "|" + element.getKey() + "|" + element.getWindowStart())
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class LateEventCounter extends ProcessFunction<ValidatedTelemetry, ValidatedTelemetry> {
+        private transient Counter lateEventsSideOutput;
+
+        @Override
+        public void open(Configuration parameters) throws Exception {
+            lateEventsSideOutput = getRuntimeContext().getMetricGroup().counter("lateEventsSideOutput");
+        }
+
+        @Override
+        public void processElement(ValidatedTelemetry value, Context ctx, Collector<ValidatedTelemetry> out) throws Exception {
+            lateEventsSideOutput.inc();
+            out.collect(value);
         }
     }
 }
@@ -0,0 +1,201 @@
+package com.telemetry.flink;
+
+import org.apache.flink.api.common.ExecutionConfig;
+import org.apache.flink.api.common.functions.AggregateFunction;
+import org.apache.flink.api.common.typeinfo.TypeInformation;
+import org.apache.flink.api.common.typeinfo.Types;
+import org.apache.flink.api.java.functions.KeySelector;
+import org.apache.flink.streaming.api.watermark.Watermark;
+import org.apache.flink.streaming.api.windowing.assigners.TumblingEventTimeWindows;
+import org.apache.flink.streaming.api.windowing.time.Time;
+import org.apache.flink.streaming.api.windowing.triggers.EventTimeTrigger;
+import org.apache.flink.streaming.api.windowing.windows.TimeWindow;
+import org.apache.flink.streaming.runtime.operators.windowing.WindowOperatorBuilder;
+import org.apache.flink.streaming.runtime.streamrecord.StreamRecord;
+import org.apache.flink.streaming.util.AbstractStreamOperatorTestHarness;
+import org.apache.flink.streaming.util.KeyedOneInputStreamOperatorTestHarness;
+import org.apache.flink.streaming.util.OneInputStreamOperatorTestHarness;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RollupPipelineTest {
+
+    private static final long WINDOW_MAX_TIMESTAMP = 4_999L;
+
+    private KeyedOneInputStreamOperatorTestHarness<String, ValidatedTelemetry, AggregatorJob.MetricPartial> devices;
+    private OneInputStreamOperatorTestHarness<AggregatorJob.MetricPartial, AggregatorJob.MetricPartial> combiner;
+    private KeyedOneInputStreamOperatorTestHarness<String, AggregatorJob.MetricPartial, AggregatorJob.MetricPartial> locations;
+    private KeyedOneInputStreamOperatorTestHarness<String, AggregatorJob.MetricPartial, AggregatorJob.MetricPartial> zones;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        devices = windowHarness(TypeInformation.of(ValidatedTelemetry.class), t -> t.getDeviceId(),
+                new AggregatorJob.MetricAggregator(), AggregatorJob.SCOPE_DEVICE);
+        combiner = new OneInputStreamOperatorTestHarness<>(new AggregatorJob.LocalRollupCombiner(AggregatorJob::locationKey));
+        combiner.open();
+        locations = rollupHarness(AggregatorJob.SCOPE_LOCATION, AggregatorJob::locationKey);
+        zones = rollupHarness(AggregatorJob.SCOPE_ZONE, AggregatorJob.MetricPartial::getZone);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        devices.close();
+        combiner.close();
+        locations.close();
+        zones.close();
+    }
+
+    @Test
+    void lateCorrectionReplacesDeviceContributionAtEveryLevel() throws Exception {
+        devices.processElement(event("device-1", 1_000L, 10.0), 1_000L);
+        devices.processElement(event("device-2", 2_000L, 20.0), 2_000L);
+        advanceWatermark(WINDOW_MAX_TIMESTAMP);
+
+        // Both device windows reach the shuffle as one pre-combined partial
+        assertEquals(1, combiner.extractOutputValues().size());
+        assertPartial(last(locations), 0, 2, 30.0, 10.0, 20.0);
+        assertPartial(last(zones), 0, 2, 30.0, 10.0, 20.0);
+
+        // device-1 uploads a late reading for the same window
+        devices.processElement(event("device-1", 3_000L, 40.0), 3_000L);
+        assertPartial(last(devices), 1, 2, 50.0, 10.0, 40.0);
+        forwardDeltas();
+
+        assertPartial(last(locations), 1, 3, 70.0, 10.0, 40.0);
+        assertPartial(last(zones), 1, 3, 70.0, 10.0, 40.0);
+    }
+
+    @Test
+    void mixedZonesAndLocationsStayNullOnceChildrenDisagree() throws Exception {
+        KeyedOneInputStreamOperatorTestHarness<String, AggregatorJob.MetricPartial, AggregatorJob.MetricPartial> fleet =
+                rollupHarness(AggregatorJob.SCOPE_FLEET, p -> AggregatorJob.SCOPE_FLEET);
+        fleet.processElement(child("zone-a", "location-1"), WINDOW_MAX_TIMESTAMP);
+        fleet.processElement(child("zone-b", "location-2"), WINDOW_MAX_TIMESTAMP);
+        fleet.processElement(child("zone-a", "location-1"), WINDOW_MAX_TIMESTAMP);
+        fleet.processWatermark(new Watermark(WINDOW_MAX_TIMESTAMP));
+
+        AggregatorJob.MetricPartial result = last(fleet);
+        assertNull(result.getZone());
+        assertNull(result.getLocation());
+        fleet.close();
+    }
+
+    @Test
+    void agreeingZoneIsKeptWhenOnlyLocationsDiffer() throws Exception {
+        zones.processElement(child("zone-a", "location-1"), WINDOW_MAX_TIMESTAMP);
+        zones.processElement(child("zone-a", "location-2"), WINDOW_MAX_TIMESTAMP);
+        zones.processWatermark(new Watermark(WINDOW_MAX_TIMESTAMP));
+
+        AggregatorJob.MetricPartial result = last(zones);
+        assertEquals("zone-a", result.getZone());
+        assertNull(result.getLocation());
+    }
+
+    private void advanceWatermark(long timestamp) throws Exception {
+        devices.processWatermark(new Watermark(timestamp));
+        forwardDeltas(devices, combiner);
+        combiner.processWatermark(new Watermark(timestamp));
+        for (AggregatorJob.MetricPartial partial : combiner.extractOutputValues()) {
+            locations.processElement(partial, partial.getWindowEnd() - 1);
+        }
+        locations.processWatermark(new Watermark(timestamp));
+        forwardDeltas(locations, zones);
+        zones.processWatermark(new Watermark(timestamp));
+    }
+
+    // Late deltas pass the combiner without waiting for a watermark
+    private void forwardDeltas() throws Exception {
+        int combined = combiner.extractOutputValues().size();
+        forwardDeltas(devices, combiner);
+        List<AggregatorJob.MetricPartial> passed = combiner.extractOutputValues();
+        for (AggregatorJob.MetricPartial partial : passed.subList(combined, passed.size())) {
+            locations.processElement(partial, partial.getWindowEnd() - 1);
+        }
+        forwardDeltas(locations, zones);
+    }
+
+    private static void forwardDeltas(AbstractStreamOperatorTestHarness<?> from,
+                                      OneInputStreamOperatorTestHarness<AggregatorJob.MetricPartial, ?> to) throws Exception {
+        StreamRecord<AggregatorJob.MetricPartial> delta;
+        while ((delta = from.getSideOutput(AggregatorJob.ROLLUP_DELTAS).poll()) != null) {
+            to.processElement(delta);
+        }
+    }
+
+    private static <IN> KeyedOneInputStreamOperatorTestHarness<String, IN, AggregatorJob.MetricPartial> windowHarness(
+            TypeInformation<IN> inputType, KeySelector<IN, String> keySelector,
+            AggregateFunction<IN, AggregatorJob.MetricPartial, AggregatorJob.MetricPartial> aggregator, String scope) throws Exception {
+        WindowOperatorBuilder<IN, String, TimeWindow> builder = new WindowOperatorBuilder<>(
+                TumblingEventTimeWindows.of(Time.seconds(5)), EventTimeTrigger.create(), new ExecutionConfig(),
+                inputType, keySelector, Types.STRING);
+        builder.allowedLateness(Time.hours(1));
+        KeyedOneInputStreamOperatorTestHarness<String, IN, AggregatorJob.MetricPartial> harness =
+                new KeyedOneInputStreamOperatorTestHarness<>(
+                        builder.aggregate(aggregator, new AggregatorJob.VersionedWindowFunction(scope), AggregatorJob.METRIC_PARTIAL_TYPE),
+                        keySelector, Types.STRING);
+        harness.open();
+        return harness;
+    }
+
+    private static KeyedOneInputStreamOperatorTestHarness<String, AggregatorJob.MetricPartial, AggregatorJob.MetricPartial> rollupHarness(
+            String scope, KeySelector<AggregatorJob.MetricPartial, String> keySelector) throws Exception {
+        return windowHarness(AggregatorJob.METRIC_PARTIAL_TYPE, keySelector, new AggregatorJob.RollupAggregator(), scope);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AggregatorJob.MetricPartial last(AbstractStreamOperatorTestHarness<AggregatorJob.MetricPartial> harness) {
+        List<AggregatorJob.MetricPartial> out = new ArrayList<>();
+        for (Object record : harness.getOutput()) {
+            if (record instanceof StreamRecord) {
+                out.add(((StreamRecord<AggregatorJob.MetricPartial>) record).getValue());
+            }
+        }
+        return out.get(out.size() - 1);
+    }
+
+    private static void assertPartial(AggregatorJob.MetricPartial partial, long version, double count,
+                                      double sum, double min, double max) {
+        assertEquals(version, partial.getVersion());
+        assertEquals(count, partial.getCount());
+        assertEquals(sum, partial.getSums().get("temperature"));
+        assertEquals(count, partial.getCounts().get("temperature"));
+        assertEquals(min, partial.getMins().get("temperature"));
+        assertEquals(max, partial.getMaxs().get("temperature"));
+    }
+
+    private static ValidatedTelemetry event(String deviceId, long timestamp, double temperature) {
+        DeviceMetadata metadata = new DeviceMetadata();
+        metadata.setZone("zone-a");
+        metadata.setLocation("location-1");
+        Map<String, Double> metrics = new HashMap<>();
+        metrics.put("temperature", temperature);
+
+        ValidatedTelemetry event = new ValidatedTelemetry();
+        event.setDeviceId(deviceId);
+        event.setTimestamp(timestamp);
+        event.setDeviceMetadata(metadata);
+        event.setMetrics(metrics);
+        event.setSampleWeight(1.0);
+        return event;
+    }
+
+    private static AggregatorJob.MetricPartial child(String zone, String location) {
+        AggregatorJob.MetricPartial child = new AggregatorJob.MetricPartial();
+        child.setZone(zone);
+        child.setLocation(location);
+        child.setWindowStart(0L);
+        child.setWindowEnd(WINDOW_MAX_TIMESTAMP + 1);
+        child.setCount(1);
+        child.add("temperature", 10.0, 1.0);
+        return child;
+    }
+}
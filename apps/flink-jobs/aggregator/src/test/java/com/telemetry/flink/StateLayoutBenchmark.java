@@ -0,0 +1,163 @@
+package com.telemetry.flink;
+
+import org.apache.flink.api.common.ExecutionConfig;
+import org.apache.flink.api.common.state.ValueState;
+import org.apache.flink.api.common.state.ValueStateDescriptor;
+import org.apache.flink.api.common.typeinfo.Types;
+import org.apache.flink.api.common.typeutils.TypeSerializer;
+import org.apache.flink.api.java.typeutils.runtime.kryo.KryoSerializer;
+import org.apache.flink.configuration.Configuration;
+import org.apache.flink.contrib.streaming.state.EmbeddedRocksDBStateBackend;
+import org.apache.flink.runtime.checkpoint.OperatorSubtaskState;
+import org.apache.flink.runtime.state.storage.FileSystemCheckpointStorage;
+import org.apache.flink.streaming.api.functions.KeyedProcessFunction;
+import org.apache.flink.streaming.api.operators.KeyedProcessOperator;
+import org.apache.flink.streaming.util.KeyedOneInputStreamOperatorTestHarness;
+import org.apache.flink.util.Collector;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checkpoint size and restore time of one device window accumulator per key on the RocksDB keyed
+ * backend with incremental checkpoints, as configured in production. Compares the Kryo-serialized
+ * {@code Map<String, Double[]>} the aggregator stored before with {@link AggregatorJob.MetricPartialSerializer}.
+ *
+ * <p>Skipped in normal builds; run from {@code apps/flink-jobs} with
+ * {@code mvn -pl aggregator -am test -Dtest=StateLayoutBenchmark -Dsurefire.failIfNoSpecifiedTests=false -Dstate.benchmark.keys=1000000}.
+ */
+@EnabledIfSystemProperty(named = "state.benchmark.keys", matches = "\\d+")
+class StateLayoutBenchmark {
+
+    private static final String[] METRICS = {"temperature", "pressure", "humidity", "latency"};
+    private static final int SAMPLES = 5;
+
+    @Test
+    void compactLayoutCheckpointsSmallerThanLegacyKryoLayout(@TempDir Path dir) throws Exception {
+        int keys = Integer.getInteger("state.benchmark.keys");
+        long legacyBytes = run(Layout.LEGACY, keys, dir.resolve("legacy"));
+        long compactBytes = run(Layout.COMPACT, keys, dir.resolve("compact"));
+        assertTrue(compactBytes < legacyBytes, "compact " + compactBytes + " >= legacy " + legacyBytes);
+    }
+
+    private static long run(Layout layout, int keys, Path checkpoints) throws Exception {
+        KeyedOneInputStreamOperatorTestHarness<String, Integer, Void> writer = harness(layout, checkpoints);
+        writer.open();
+        long fillStart = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            writer.processElement(i, 0L);
+        }
+        long fillMs = (System.nanoTime() - fillStart) / 1_000_000;
+
+        long snapshotStart = System.nanoTime();
+        OperatorSubtaskState snapshot = writer.snapshot(1L, 1L);
+        long snapshotMs = (System.nanoTime() - snapshotStart) / 1_000_000;
+        writer.close();
+
+        KeyedOneInputStreamOperatorTestHarness<String, Integer, Void> reader = harness(layout, checkpoints);
+        long restoreStart = System.nanoTime();
+        reader.initializeState(snapshot);
+        reader.open();
+        long restoreMs = (System.nanoTime() - restoreStart) / 1_000_000;
+
+        // Reads every value back, so the serializer's decode cost shows up as well
+        long readStart = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            reader.processElement(i, 0L);
+        }
+        long readMs = (System.nanoTime() - readStart) / 1_000_000;
+        reader.close();
+
+        System.out.printf("%s: keys=%d checkpointBytes=%d fillMs=%d snapshotMs=%d restoreMs=%d readAllMs=%d%n",
+                layout, keys, snapshot.getStateSize(), fillMs, snapshotMs, restoreMs, readMs);
+        return snapshot.getStateSize();
+    }
+
+    private static KeyedOneInputStreamOperatorTestHarness<String, Integer, Void> harness(Layout layout, Path checkpoints) throws Exception {
+        KeyedOneInputStreamOperatorTestHarness<String, Integer, Void> harness = new KeyedOneInputStreamOperatorTestHarness<>(
+                new KeyedProcessOperator<>(new TouchState(layout)), StateLayoutBenchmark::deviceKey, Types.STRING);
+        harness.setStateBackend(new EmbeddedRocksDBStateBackend(true));
+        harness.setCheckpointStorage(new FileSystemCheckpointStorage(checkpoints.toUri()));
+        return harness;
+    }
+
+    private static String deviceKey(Integer i) {
+        return String.format("device-%07d", i);
+    }
+
+    private enum Layout {
+        LEGACY {
+            @Override
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            TypeSerializer<Object> serializer() {
+                return (TypeSerializer) new KryoSerializer<>(Map.class, new ExecutionConfig());
+            }
+
+            @Override
+            Object value(int key) {
+                Map<String, Double[]> accumulator = new HashMap<>();
+                for (String metric : METRICS) {
+                    double sum = 0;
+                    for (int sample = 0; sample < SAMPLES; sample++) {
+                        sum += (key + sample) % 100;
+                    }
+                    accumulator.put(metric, new Double[]{sum, (double) SAMPLES});
+                }
+                return accumulator;
+            }
+        },
+        COMPACT {
+            @Override
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            TypeSerializer<Object> serializer() {
+                return (TypeSerializer) AggregatorJob.METRIC_PARTIAL_TYPE.createSerializer(new ExecutionConfig());
+            }
+
+            @Override
+            Object value(int key) {
+                AggregatorJob.MetricPartial partial = new AggregatorJob.MetricPartial();
+                partial.setZone("zone-" + (key % 50));
+                partial.setLocation("location-" + (key % 500));
+                partial.setCount(SAMPLES);
+                for (String metric : METRICS) {
+                    for (int sample = 0; sample < SAMPLES; sample++) {
+                        partial.add(metric, (key + sample) % 100, 1.0);
+                    }
+                }
+                return partial;
+            }
+        };
+
+        abstract TypeSerializer<Object> serializer();
+
+        abstract Object value(int key);
+    }
+
+    // Writes the key's accumulator on first sight and only reads it afterwards
+    private static class TouchState extends KeyedProcessFunction<String, Integer, Void> {
+        private final Layout layout;
+        private transient ValueState<Object> accumulator;
+
+        TouchState(Layout layout) {
+            this.layout = layout;
+        }
+
+        @Override
+        public void open(Configuration parameters) throws Exception {
+            accumulator = getRuntimeContext().getState(new ValueStateDescriptor<>("accumulator", layout.serializer()));
+        }
+
+        @Override
+        public void processElement(Integer key, Context ctx, Collector<Void> out) throws Exception {
+            if (accumulator.value() == null) {
+                accumulator.update(layout.value(key));
+            }
+        }
+    }
+}
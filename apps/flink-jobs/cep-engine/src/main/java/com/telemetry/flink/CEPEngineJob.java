@@ -1,34 +1,45 @@
 package com.telemetry.flink;
 
 import org.apache.flink.api.common.eventtime.WatermarkStrategy;
-import org.apache.flink.cep.CEP;
-import org.apache.flink.cep.PatternSelectFunction;
-import org.apache.flink.cep.PatternStream;
-import org.apache.flink.cep.pattern.Pattern;
-import org.apache.flink.cep.pattern.conditions.IterativeCondition;
+import org.apache.flink.api.common.state.MapState;
+import org.apache.flink.api.common.state.MapStateDescriptor;
+import org.apache.flink.api.common.state.StateTtlConfig;
+import org.apache.flink.api.common.state.ValueState;
+import org.apache.flink.api.common.state.ValueStateDescriptor;
+import org.apache.flink.api.common.typeinfo.TypeInformation;
+import org.apache.flink.api.common.typeinfo.Types;
+import org.apache.flink.configuration.Configuration;
 import org.apache.flink.connector.kafka.source.KafkaSource;
 import org.apache.flink.connector.kafka.source.enumerator.initializer.OffsetsInitializer;
 import org.apache.flink.connector.kafka.source.reader.deserializer.KafkaRecordDeserializationSchema;
 import org.apache.flink.streaming.api.datastream.DataStream;
 import org.apache.flink.streaming.api.environment.StreamExecutionEnvironment;
-import org.apache.flink.streaming.api.windowing.time.Time;
+import org.apache.flink.streaming.api.functions.KeyedProcessFunction;
 import org.apache.flink.streaming.connectors.kafka.FlinkKafkaProducer;
+import org.apache.flink.util.Collector;
 import org.apache.flink.formats.avro.registry.confluent.ConfluentRegistryAvroDeserializationSchema;
 import org.apache.flink.formats.avro.registry.confluent.ConfluentRegistryAvroSerializationSchema;
+import com.telemetry.flink.state.StateSettings;
 
 import java.time.Duration;
-import java.util.List;
-import java.util.Map;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.UUID;
 
 public class CEPEngineJob {
 
     private static final String KAFKA_BOOTSTRAP = System.getenv("KAFKA_BOOTSTRAP_SERVERS");
     private static final String SCHEMA_REGISTRY = System.getenv("SCHEMA_REGISTRY_URL");
 
+    // A latency above SPIKE_LATENCY within SPIKE_WITHIN of one above HIGH_LATENCY raises an alert
+    static final double HIGH_LATENCY = 80.0;
+    static final double SPIKE_LATENCY = 100.0;
+    static final Duration SPIKE_WITHIN = Duration.ofSeconds(10);
+
     public static void main(String[] args) throws Exception {
         StreamExecutionEnvironment env = StreamExecutionEnvironment.getExecutionEnvironment();
         env.enableCheckpointing(60000);
+        StateSettings.configure(env);
 
         KafkaSource<AggregatedMetric> source = KafkaSource.<AggregatedMetric>builder()
                 .setBootstrapServers(KAFKA_BOOTSTRAP)
@@ -42,39 +53,18 @@ public class CEPEngineJob {
         DataStream<AggregatedMetric> stream = env.fromSource(source, WatermarkStrategy.forBoundedOutOfOrderness(Duration.ofSeconds(5))
                 .withTimestampAssigner((event, timestamp) -> event.getTimestamp()), "Aggregated Source");
 
-        Pattern<AggregatedMetric, ?> pattern = Pattern.<AggregatedMetric>begin("high")
-                .where(new IterativeCondition<AggregatedMetric>() {
-                    @Override
-                    public boolean filter(AggregatedMetric value, Context<AggregatedMetric> ctx) throws Exception {
-                        return value.getAvgMetrics().getOrDefault("latency", 0.0) > 80.0;
-                    }
-                })
-                .followedBy("spike")
-                .where(new IterativeCondition<AggregatedMetric>() {
-                    @Override
-                    public boolean filter(AggregatedMetric value, Context<AggregatedMetric> ctx) throws Exception {
-                        return value.getAvgMetrics().getOrDefault("latency", 0.0) > 100.0;
-                    }
-                })
-                .within(Time.seconds(10));
-
-        PatternStream<AggregatedMetric> patternStream = CEP.pattern(stream.keyBy(m -> m.getDeviceId()), pattern);
-
-        DataStream<Alert> alerts = patternStream.select(new PatternSelectFunction<AggregatedMetric, Alert>() {
-            @Override
-            public Alert select(Map<String, List<AggregatedMetric>> pattern) throws Exception {
-                AggregatedMetric high = pattern.get("high").get(0);
-                AggregatedMetric spike = pattern.get("spike").get(0);
-                Alert alert = new Alert();
-                alert.setAlertId(UUID.randomUUID().toString());
-                alert.setAlertType("LATENCY_SPIKE");
-                alert.setSeverity("HIGH");
-                alert.setTimestamp(spike.getTimestamp());
-                alert.setDeviceIds(Collections.singletonList(high.getDeviceId()));
-                alert.setDescription("Latency spike detected after high value");
-                return alert;
-            }
-        });
+        // aggregated-metrics is a compacted, versioned upsert stream. The detector uses the first
+        // version it sees of each device window, which is v0 live but may be a later version when
+        // replaying after compaction; it buffers samples, so it sees only the fields it matches on.
+        DataStream<LatencySample> samples = stream
+                .map(m -> new LatencySample(m.getDeviceId(), m.getTimestamp(), m.getAvgMetrics().getOrDefault("latency", 0.0)))
+                .returns(LatencySample.class)
+                .name("Latency Samples");
+
+        DataStream<Alert> alerts = samples
+                .keyBy(s -> s.deviceId, Types.STRING)
+                .process(new LatencySpikeFunction(HIGH_LATENCY, SPIKE_LATENCY, SPIKE_WITHIN.toMillis()))
+                .name("Latency Spike Detection");
 
         Properties producerProps = new Properties();
         producerProps.setProperty("bootstrap.servers", KAFKA_BOOTSTRAP);
@@ -88,4 +78,102 @@ public class CEPEngineJob {
 
         env.execute("Telemetry CEP Engine");
     }
+
+    /**
+     * Compact detector input: one device's average latency for one aggregation window.
+     */
+    public static class LatencySample {
+        public String deviceId;
+        public long timestamp;
+        public double latency;
+
+        public LatencySample() {
+        }
+
+        public LatencySample(String deviceId, long timestamp, double latency) {
+            this.deviceId = deviceId;
+            this.timestamp = timestamp;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * Alerts when a sample above the spike threshold follows a sample above the high threshold
+     * for the same device within {@code withinMs}, like the former CEP pattern high followedBy
+     * spike. Samples wait in a per-timestamp buffer until the watermark passes them and are then
+     * evaluated in event-time order. A sample's timestamp identifies its device window, so later
+     * versions of a window are ignored whether they arrive while the first is buffered or after
+     * it was evaluated. Only the latest high sample is kept, so a spike matches the
+     * nearest preceding high and raises one alert. Both states carry the shared idle TTL, so keys
+     * of decommissioned devices are dropped by RocksDB compaction.
+     */
+    public static class LatencySpikeFunction extends KeyedProcessFunction<String, LatencySample, Alert> {
+        private static final TypeInformation<LatencySample> SAMPLE_TYPE = Types.POJO(LatencySample.class);
+
+        private final double highThreshold;
+        private final double spikeThreshold;
+        private final long withinMs;
+
+        private transient MapState<Long, LatencySample> pendingSamples;
+        private transient ValueState<LatencySample> lastHigh;
+
+        public LatencySpikeFunction(double highThreshold, double spikeThreshold, long withinMs) {
+            this.highThreshold = highThreshold;
+            this.spikeThreshold = spikeThreshold;
+            this.withinMs = withinMs;
+        }
+
+        @Override
+        public void open(Configuration parameters) throws Exception {
+            StateTtlConfig idleTtl = StateSettings.idleTtl();
+            MapStateDescriptor<Long, LatencySample> pendingDescriptor =
+                    new MapStateDescriptor<>("pending-samples", Types.LONG, SAMPLE_TYPE);
+            pendingDescriptor.enableTimeToLive(idleTtl);
+            ValueStateDescriptor<LatencySample> highDescriptor = new ValueStateDescriptor<>("last-high", SAMPLE_TYPE);
+            highDescriptor.enableTimeToLive(idleTtl);
+            pendingSamples = getRuntimeContext().getMapState(pendingDescriptor);
+            lastHigh = getRuntimeContext().getState(highDescriptor);
+        }
+
+        @Override
+        public void processElement(LatencySample sample, Context ctx, Collector<Alert> out) throws Exception {
+            // Behind the watermark the window was already evaluated, so this is a later version
+            if (sample.timestamp <= ctx.timerService().currentWatermark() || pendingSamples.contains(sample.timestamp)) {
+                return;
+            }
+            pendingSamples.put(sample.timestamp, sample);
+            ctx.timerService().registerEventTimeTimer(sample.timestamp);
+        }
+
+        @Override
+        public void onTimer(long timestamp, OnTimerContext ctx, Collector<Alert> out) throws Exception {
+            LatencySample sample = pendingSamples.get(timestamp);
+            if (sample == null) {
+                return;
+            }
+            pendingSamples.remove(timestamp);
+
+            LatencySample high = lastHigh.value();
+            boolean highInRange = high != null && sample.timestamp - high.timestamp < withinMs;
+            if (highInRange && sample.latency > spikeThreshold) {
+                out.collect(alert(high, sample));
+            }
+            if (sample.latency > highThreshold) {
+                lastHigh.update(sample);
+            } else if (high != null && !highInRange) {
+                lastHigh.clear();
+            }
+        }
+
+        private static Alert alert(LatencySample high, LatencySample spike) {
+            Alert alert = new Alert();
+            alert.setAlertId(UUID.randomUUID().toString());
+            alert.setAlertType("LATENCY_SPIKE");
+            alert.setSeverity("HIGH");
+            alert.setTimestamp(spike.timestamp);
+            alert.setDeviceIds(Collections.singletonList(high.deviceId));
+            alert.setDescription("Latency spike detected after high value");
+            return alert;
+        }
+    }
 }
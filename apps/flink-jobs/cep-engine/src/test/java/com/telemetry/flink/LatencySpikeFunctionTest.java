@@ -0,0 +1,78 @@
+package com.telemetry.flink;
+
+import org.apache.flink.api.common.typeinfo.Types;
+import org.apache.flink.streaming.api.watermark.Watermark;
+import org.apache.flink.streaming.util.KeyedOneInputStreamOperatorTestHarness;
+import org.apache.flink.streaming.util.ProcessFunctionTestHarnesses;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencySpikeFunctionTest {
+
+    private KeyedOneInputStreamOperatorTestHarness<String, CEPEngineJob.LatencySample, Alert> harness;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        harness = ProcessFunctionTestHarnesses.forKeyedProcessFunction(
+                new CEPEngineJob.LatencySpikeFunction(CEPEngineJob.HIGH_LATENCY, CEPEngineJob.SPIKE_LATENCY,
+                        CEPEngineJob.SPIKE_WITHIN.toMillis()),
+                s -> s.deviceId, Types.STRING);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        harness.close();
+    }
+
+    @Test
+    void alertsOnSpikeWithinWindowOfHigh() throws Exception {
+        send(4_999L, 85.0);
+        send(9_999L, 120.0);
+        harness.processWatermark(new Watermark(9_999L));
+
+        List<Alert> alerts = harness.extractOutputValues();
+        assertEquals(1, alerts.size());
+        assertEquals("LATENCY_SPIKE", alerts.get(0).getAlertType());
+        assertEquals(9_999L, alerts.get(0).getTimestamp());
+    }
+
+    @Test
+    void ignoresSpikeAfterWindowExpires() throws Exception {
+        send(4_999L, 85.0);
+        send(14_999L, 120.0);
+        harness.processWatermark(new Watermark(14_999L));
+
+        assertTrue(harness.extractOutputValues().isEmpty());
+    }
+
+    @Test
+    void evaluatesOutOfOrderSamplesInEventTimeOrder() throws Exception {
+        send(9_999L, 120.0);
+        send(4_999L, 85.0);
+        harness.processWatermark(new Watermark(9_999L));
+
+        assertEquals(1, harness.extractOutputValues().size());
+    }
+
+    @Test
+    void usesFirstVersionSeenOfEachWindow() throws Exception {
+        send(4_999L, 85.0);
+        send(9_999L, 90.0);
+        // Later version of the same window, before and after the watermark passes it
+        send(9_999L, 120.0);
+        harness.processWatermark(new Watermark(9_999L));
+        send(9_999L, 130.0);
+
+        assertTrue(harness.extractOutputValues().isEmpty());
+    }
+
+    private void send(long timestamp, double latency) throws Exception {
+        harness.processElement(new CEPEngineJob.LatencySample("device-1", timestamp, latency), timestamp);
+    }
+}
@@ -0,0 +1,81 @@
+package com.telemetry.flink.state;
+
+import org.apache.flink.api.common.ExecutionConfig;
+import org.apache.flink.api.common.typeinfo.TypeInformation;
+import org.apache.flink.api.common.typeutils.TypeSerializer;
+
+import java.util.Objects;
+
+/**
+ * Type information backed by a hand-written serializer, for state types whose POJO layout
+ * would repeat field or map keys in every entry.
+ */
+public class SerializerTypeInfo<T> extends TypeInformation<T> {
+
+    private final Class<T> typeClass;
+    private final TypeSerializer<T> serializer;
+
+    public SerializerTypeInfo(Class<T> typeClass, TypeSerializer<T> serializer) {
+        this.typeClass = typeClass;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public boolean isBasicType() {
+        return false;
+    }
+
+    @Override
+    public boolean isTupleType() {
+        return false;
+    }
+
+    @Override
+    public int getArity() {
+        return 1;
+    }
+
+    @Override
+    public int getTotalFields() {
+        return 1;
+    }
+
+    @Override
+    public Class<T> getTypeClass() {
+        return typeClass;
+    }
+
+    @Override
+    public boolean isKeyType() {
+        return false;
+    }
+
+    @Override
+    public TypeSerializer<T> createSerializer(ExecutionConfig config) {
+        return serializer.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return "SerializerTypeInfo<" + typeClass.getName() + ">";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SerializerTypeInfo)) {
+            return false;
+        }
+        SerializerTypeInfo<?> other = (SerializerTypeInfo<?>) obj;
+        return other.canEqual(this) && typeClass.equals(other.typeClass) && serializer.equals(other.serializer);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(typeClass, serializer);
+    }
+
+    @Override
+    public boolean canEqual(Object obj) {
+        return obj instanceof SerializerTypeInfo;
+    }
+}
@@ -0,0 +1,41 @@
+package com.telemetry.flink.state;
+
+import org.apache.flink.api.common.state.StateTtlConfig;
+import org.apache.flink.api.common.time.Time;
+import org.apache.flink.streaming.api.environment.StreamExecutionEnvironment;
+
+/**
+ * State layout and expiry policy shared by all telemetry jobs.
+ */
+public final class StateSettings {
+
+    // Keyed state untouched for this long is expired, e.g. for decommissioned devices
+    public static final long IDLE_STATE_TTL_HOURS = Long.parseLong(
+            System.getenv().getOrDefault("STATE_IDLE_TTL_HOURS", "168"));
+
+    // Entries RocksDB compacts before the TTL filter re-reads the current time
+    private static final long COMPACTION_FILTER_QUERY_INTERVAL = 1000;
+
+    private StateSettings() {
+    }
+
+    /**
+     * Rejects any type that would fall back to Kryo, so state and network records always use
+     * explicit POJO, Avro or built-in serializers that are compact and schema-evolvable.
+     */
+    public static void configure(StreamExecutionEnvironment env) {
+        env.getConfig().disableGenericTypes();
+    }
+
+    /**
+     * TTL refreshed on every write and dropped by the RocksDB compaction filter once expired,
+     * so idle keys are reclaimed without a full scan or a timer per key.
+     */
+    public static StateTtlConfig idleTtl() {
+        return StateTtlConfig.newBuilder(Time.hours(IDLE_STATE_TTL_HOURS))
+                .setUpdateType(StateTtlConfig.UpdateType.OnCreateAndWrite)
+                .setStateVisibility(StateTtlConfig.StateVisibility.NeverReturnExpired)
+                .cleanupInRocksdbCompactFilter(COMPACTION_FILTER_QUERY_INTERVAL)
+                .build();
+    }
+}
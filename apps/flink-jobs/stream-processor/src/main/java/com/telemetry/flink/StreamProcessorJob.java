@@ -2,13 +2,17 @@ package com.telemetry.flink;
 
 import org.apache.flink.api.common.eventtime.WatermarkStrategy;
 import org.apache.flink.api.common.functions.FlatMapFunction;
+import org.apache.flink.api.common.serialization.DeserializationSchema;
 import org.apache.flink.api.common.serialization.SimpleStringSchema;
+import org.apache.flink.api.common.typeinfo.TypeInformation;
 import org.apache.flink.connector.jdbc.JdbcConnectionOptions;
 import org.apache.flink.connector.jdbc.JdbcExecutionOptions;
 import org.apache.flink.connector.jdbc.JdbcSink;
 import org.apache.flink.connector.kafka.source.KafkaSource;
 import org.apache.flink.connector.kafka.source.enumerator.initializer.OffsetsInitializer;
 import org.apache.flink.connector.kafka.source.reader.deserializer.KafkaRecordDeserializationSchema;
+import org.apache.flink.metrics.Counter;
+import org.apache.flink.metrics.Gauge;
 import org.apache.flink.streaming.api.datastream.AsyncDataStream;
 import org.apache.flink.streaming.api.datastream.DataStream;
 import org.apache.flink.streaming.api.environment.StreamExecutionEnvironment;
@@ -21,19 +25,25 @@ import org.apache.flink.util.Collector;
 import org.apache.avro.specific.SpecificRecord;
 import org.apache.flink.formats.avro.AvroDeserializationSchema;
 import org.apache.flink.formats.avro.registry.confluent.ConfluentRegistryAvroDeserializationSchema;
+import com.telemetry.flink.state.StateSettings;
 import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
 import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class StreamProcessorJob {
@@ -46,24 +56,50 @@ public class StreamProcessorJob {
     private static final String S3_BUCKET = System.getenv("S3_BUCKET");
     private static final String S3_ENDPOINT = System.getenv("S3_ENDPOINT");
 
+    // Load shedding is opt-in; thresholds are source lag (processing time minus Kafka append time) in ms
+    private static final boolean LOAD_SHEDDING_ENABLED = Boolean.parseBoolean(System.getenv().getOrDefault("LOAD_SHEDDING_ENABLED", "false"));
+    private static final long LOAD_SHED_SOFT_LAG_MS = Long.parseLong(System.getenv().getOrDefault("LOAD_SHED_SOFT_LAG_MS", "30000"));
+    private static final long LOAD_SHED_HARD_LAG_MS = Long.parseLong(System.getenv().getOrDefault("LOAD_SHED_HARD_LAG_MS", "120000"));
+    private static final double LOAD_SHED_SOFT_SAMPLE_RATE = Double.parseDouble(System.getenv().getOrDefault("LOAD_SHED_SOFT_SAMPLE_RATE", "0.5"));
+    private static final double LOAD_SHED_HARD_SAMPLE_RATE = Double.parseDouble(System.getenv().getOrDefault("LOAD_SHED_HARD_SAMPLE_RATE", "0.1"));
+    private static final int LOAD_SHED_MIN_QUALITY = Integer.parseInt(System.getenv().getOrDefault("LOAD_SHED_MIN_QUALITY", "50"));
+    private static final String LOAD_SHED_ALERT_SENSOR_TYPES = System.getenv().getOrDefault("LOAD_SHED_ALERT_SENSOR_TYPES", "latency");
+    // Operator-managed allowlist; device-supplied tags are never trusted to bypass shedding
+    private static final String LOAD_SHED_PROTECTED_DEVICES = System.getenv().getOrDefault("LOAD_SHED_PROTECTED_DEVICES", "");
+
     public static void main(String[] args) throws Exception {
         StreamExecutionEnvironment env = StreamExecutionEnvironment.getExecutionEnvironment();
         env.enableCheckpointing(60000);
+        StateSettings.configure(env);
 
-        KafkaSource<Telemetry> source = KafkaSource.<Telemetry>builder()
+        KafkaSource<IngestedTelemetry> source = KafkaSource.<IngestedTelemetry>builder()
                 .setBootstrapServers(KAFKA_BOOTSTRAP)
                 .setTopics("ingest-telemetry")
                 .setGroupId("stream-processor")
                 .setStartingOffsets(OffsetsInitializer.earliest())
-                .setDeserializer(KafkaRecordDeserializationSchema.valueOnly(
+                .setDeserializer(new IngestDeserializationSchema(
                         ConfluentRegistryAvroDeserializationSchema.forSpecific(Telemetry.class, SCHEMA_REGISTRY)))
                 .build();
 
-        DataStream<Telemetry> telemetryStream = env.fromSource(source, WatermarkStrategy.forBoundedOutOfOrderness(Duration.ofSeconds(5))
-                .withTimestampAssigner((event, timestamp) -> event.getTimestamp()), "Telemetry Source");
+        DataStream<IngestedTelemetry> telemetryStream = env.fromSource(source, WatermarkStrategy.<IngestedTelemetry>forBoundedOutOfOrderness(Duration.ofSeconds(5))
+                .withTimestampAssigner((record, timestamp) -> record.event.getTimestamp())
+                .withIdleness(Duration.ofMinutes(1)), "Telemetry Source");
+
+        // Shed before enrichment so dropped events never cost a Redis lookup
+        DataStream<IngestedTelemetry> admittedStream = telemetryStream;
+        if (LOAD_SHEDDING_ENABLED) {
+            admittedStream = telemetryStream
+                    .process(new LoadSheddingFunction(
+                            LOAD_SHED_SOFT_LAG_MS, LOAD_SHED_HARD_LAG_MS,
+                            LOAD_SHED_SOFT_SAMPLE_RATE, LOAD_SHED_HARD_SAMPLE_RATE,
+                            LOAD_SHED_MIN_QUALITY,
+                            new HashSet<>(Arrays.asList(LOAD_SHED_ALERT_SENSOR_TYPES.split(","))),
+                            new HashSet<>(Arrays.asList(LOAD_SHED_PROTECTED_DEVICES.split(",")))))
+                    .name("Load Shedding");
+        }
 
         DataStream<EnrichedTelemetry> enrichedStream = AsyncDataStream.unorderedWait(
-                telemetryStream,
+                admittedStream,
                 new RedisEnrichFunction(),
                 5000, TimeUnit.MILLISECONDS, 100);
 
@@ -82,7 +118,51 @@ public class StreamProcessorJob {
         env.execute("Telemetry Stream Processor");
     }
 
-    public static class RedisEnrichFunction extends RichAsyncFunction<Telemetry, EnrichedTelemetry> {
+    /**
+     * Telemetry as read from Kafka, plus fields owned by the pipeline rather than the device:
+     * the broker append time used to measure source lag and the load-shedding sample weight.
+     */
+    public static class IngestedTelemetry {
+        public Telemetry event;
+        public long ingestTimestamp;
+        public double sampleWeight = 1.0;
+
+        public IngestedTelemetry() {
+        }
+
+        public IngestedTelemetry(Telemetry event, long ingestTimestamp) {
+            this.event = event;
+            this.ingestTimestamp = ingestTimestamp;
+        }
+    }
+
+    public static class IngestDeserializationSchema implements KafkaRecordDeserializationSchema<IngestedTelemetry> {
+        private final DeserializationSchema<Telemetry> valueSchema;
+
+        public IngestDeserializationSchema(DeserializationSchema<Telemetry> valueSchema) {
+            this.valueSchema = valueSchema;
+        }
+
+        @Override
+        public void open(DeserializationSchema.InitializationContext context) throws Exception {
+            valueSchema.open(context);
+        }
+
+        @Override
+        public void deserialize(ConsumerRecord<byte[], byte[]> record, Collector<IngestedTelemetry> out) throws IOException {
+            Telemetry event = valueSchema.deserialize(record.value());
+            if (event != null) {
+                out.collect(new IngestedTelemetry(event, record.timestamp()));
+            }
+        }
+
+        @Override
+        public TypeInformation<IngestedTelemetry> getProducedType() {
+            return TypeInformation.of(IngestedTelemetry.class);
+        }
+    }
+
+    public static class RedisEnrichFunction extends RichAsyncFunction<IngestedTelemetry, EnrichedTelemetry> {
         private transient JedisPool jedisPool;
 
         @Override
@@ -93,10 +173,11 @@ public class StreamProcessorJob {
         }
 
         @Override
-        public void asyncInvoke(Telemetry input, ResultFuture<EnrichedTelemetry> resultFuture) throws Exception {
+        public void asyncInvoke(IngestedTelemetry input, ResultFuture<EnrichedTelemetry> resultFuture) throws Exception {
             try (Jedis jedis = jedisPool.getResource()) {
-                String features = jedis.get("features:" + input.getDeviceId());
-                EnrichedTelemetry enriched = new EnrichedTelemetry(input);
+                String features = jedis.get("features:" + input.event.getDeviceId());
+                EnrichedTelemetry enriched = new EnrichedTelemetry(input.event);
+                enriched.setSampleWeight(input.sampleWeight);
                 if (features != null) {
                     enriched.setFeatures(Json.parse(features));
                 }
@@ -115,18 +196,121 @@ public class StreamProcessorJob {
     }
 
     public static class ValidationProcessFunction extends ProcessFunction<EnrichedTelemetry, ValidatedTelemetry> {
+        static final double MIN_VALID_VALUE = 0;
+        static final double MAX_VALID_VALUE = 1000;
+
+        static boolean isValidValue(double value) {
+            return value >= MIN_VALID_VALUE && value <= MAX_VALID_VALUE;
+        }
+
         @Override
         public void processElement(EnrichedTelemetry value, Context ctx, Collector<ValidatedTelemetry> out) throws Exception {
             boolean valid = true;
             for (Map.Entry<String, Double> metric : value.getMetrics().entrySet()) {
-                if (metric.getValue() < 0 || metric.getValue() > 1000) {
+                if (!isValidValue(metric.getValue())) {
                     valid = false;
                     break;
                 }
             }
             ValidatedTelemetry validated = new ValidatedTelemetry(value);
             validated.setValid(valid);
+            validated.setSampleWeight(value.getSampleWeight());
             out.collect(validated);
         }
     }
+
+    /**
+     * Thins low-value telemetry while the source is behind. Lag is measured per record as processing
+     * time minus the Kafka append time, which grows with both consumer lag and backpressure and,
+     * unlike the watermark, does not depend on device clocks or stall on idle partitions.
+     *
+     * <p>Events that can raise alerts (alert sensor types, allowlisted devices, or values the
+     * validator would reject) always pass. Below the soft threshold everything passes; above it,
+     * low-quality events are sampled at the soft rate, and above the hard threshold low-quality
+     * events drop to the hard rate while normal events are sampled at the soft rate. Kept samples
+     * carry a sample weight of 1/rate so downstream sums and counts stay unbiased.
+     */
+    public static class LoadSheddingFunction extends ProcessFunction<IngestedTelemetry, IngestedTelemetry> {
+        private final long softLagMs;
+        private final long hardLagMs;
+        private final double softSampleRate;
+        private final double hardSampleRate;
+        private final int minQuality;
+        private final Set<String> alertSensorTypes;
+        private final Set<String> protectedDevices;
+
+        private transient Counter passedProtected;
+        private transient Counter passedUnsampled;
+        private transient Counter passedSampled;
+        private transient Counter shed;
+        private transient volatile long sourceLagMs;
+        private transient volatile int shedLevel;
+
+        public LoadSheddingFunction(long softLagMs, long hardLagMs, double softSampleRate, double hardSampleRate,
+                                    int minQuality, Set<String> alertSensorTypes, Set<String> protectedDevices) {
+            this.softLagMs = softLagMs;
+            this.hardLagMs = hardLagMs;
+            this.softSampleRate = softSampleRate;
+            this.hardSampleRate = hardSampleRate;
+            this.minQuality = minQuality;
+            this.alertSensorTypes = alertSensorTypes;
+            this.protectedDevices = protectedDevices;
+        }
+
+        @Override
+        public void open(Configuration parameters) throws Exception {
+            passedProtected = getRuntimeContext().getMetricGroup().counter("loadShedPassedProtected");
+            passedUnsampled = getRuntimeContext().getMetricGroup().counter("loadShedPassedUnsampled");
+            passedSampled = getRuntimeContext().getMetricGroup().counter("loadShedPassedSampled");
+            shed = getRuntimeContext().getMetricGroup().counter("loadShedDropped");
+            getRuntimeContext().getMetricGroup().gauge("loadShedSourceLagMs", (Gauge<Long>) () -> sourceLagMs);
+            getRuntimeContext().getMetricGroup().gauge("loadShedLevel", (Gauge<Integer>) () -> shedLevel);
+        }
+
+        @Override
+        public void processElement(IngestedTelemetry record, Context ctx, Collector<IngestedTelemetry> out) throws Exception {
+            sourceLagMs = Math.max(0L, ctx.timerService().currentProcessingTime() - record.ingestTimestamp);
+            shedLevel = sourceLagMs >= hardLagMs ? 2 : sourceLagMs >= softLagMs ? 1 : 0;
+
+            Telemetry value = record.event;
+            if (isProtected(value)) {
+                passedProtected.inc();
+                out.collect(record);
+                return;
+            }
+
+            double rate = sampleRate(isLowValue(value));
+            if (rate >= 1.0) {
+                passedUnsampled.inc();
+                out.collect(record);
+            } else if (Math.floorMod(value.getEventId().hashCode(), 10_000) < rate * 10_000) {
+                record.sampleWeight = 1.0 / rate;
+                passedSampled.inc();
+                out.collect(record);
+            } else {
+                shed.inc();
+            }
+        }
+
+        private double sampleRate(boolean lowValue) {
+            switch (shedLevel) {
+                case 2:
+                    return lowValue ? hardSampleRate : softSampleRate;
+                case 1:
+                    return lowValue ? softSampleRate : 1.0;
+                default:
+                    return 1.0;
+            }
+        }
+
+        private boolean isProtected(Telemetry value) {
+            return alertSensorTypes.contains(value.getSensorType())
+                    || protectedDevices.contains(value.getDeviceId())
+                    || !ValidationProcessFunction.isValidValue(value.getValue());
+        }
+
+        private boolean isLowValue(Telemetry value) {
+            return value.getQuality() != null && value.getQuality() < minQuality;
+        }
+    }
 }
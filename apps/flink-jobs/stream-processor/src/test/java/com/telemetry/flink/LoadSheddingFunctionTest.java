@@ -0,0 +1,134 @@
+package com.telemetry.flink;
+
+import org.apache.flink.streaming.util.OneInputStreamOperatorTestHarness;
+import org.apache.flink.streaming.util.ProcessFunctionTestHarnesses;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadSheddingFunctionTest {
+
+    private static final long NOW = 10_000_000L;
+    private static final long SOFT_LAG_MS = 30_000;
+    private static final long HARD_LAG_MS = 120_000;
+    private static final double SOFT_RATE = 0.5;
+    private static final double HARD_RATE = 0.1;
+    private static final int EVENTS = 10_000;
+
+    private OneInputStreamOperatorTestHarness<StreamProcessorJob.IngestedTelemetry, StreamProcessorJob.IngestedTelemetry> harness;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        harness = ProcessFunctionTestHarnesses.forProcessFunction(new StreamProcessorJob.LoadSheddingFunction(
+                SOFT_LAG_MS, HARD_LAG_MS, SOFT_RATE, HARD_RATE, 50,
+                Set.of("latency"), Set.of("device-protected")));
+        harness.setProcessingTime(NOW);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        harness.close();
+    }
+
+    @Test
+    void passesEverythingBelowSoftThreshold() throws Exception {
+        sendBatch("low", 10, SOFT_LAG_MS - 1);
+        sendBatch("normal", 90, SOFT_LAG_MS - 1);
+
+        List<StreamProcessorJob.IngestedTelemetry> out = harness.extractOutputValues();
+        assertEquals(2 * EVENTS, out.size());
+        out.forEach(record -> assertEquals(1.0, record.sampleWeight));
+    }
+
+    @Test
+    void samplesLowQualityAtSoftRateAboveSoftThreshold() throws Exception {
+        sendBatch("low", 10, SOFT_LAG_MS);
+        sendBatch("normal", 90, SOFT_LAG_MS);
+
+        assertSampled(outputFor("low"), SOFT_RATE);
+        assertUnsampled(outputFor("normal"));
+    }
+
+    @Test
+    void samplesLowQualityAtHardRateAndNormalAtSoftRateAboveHardThreshold() throws Exception {
+        sendBatch("low", 10, HARD_LAG_MS);
+        sendBatch("normal", 90, HARD_LAG_MS);
+
+        assertSampled(outputFor("low"), HARD_RATE);
+        assertSampled(outputFor("normal"), SOFT_RATE);
+    }
+
+    @Test
+    void alwaysPassesProtectedEventsAboveHardThreshold() throws Exception {
+        for (int i = 0; i < EVENTS; i++) {
+            harness.processElement(event("alert-" + i, "device-" + i, "latency", 10.0, 10, HARD_LAG_MS), NOW);
+            harness.processElement(event("allowlisted-" + i, "device-protected", "temperature", 10.0, 10, HARD_LAG_MS), NOW);
+            harness.processElement(event("invalid-" + i, "device-" + i, "temperature", 1500.0, 10, HARD_LAG_MS), NOW);
+        }
+
+        List<StreamProcessorJob.IngestedTelemetry> out = harness.extractOutputValues();
+        assertEquals(3 * EVENTS, out.size());
+        out.forEach(record -> assertEquals(1.0, record.sampleWeight));
+    }
+
+    @Test
+    void ignoresDeviceSuppliedTierTag() throws Exception {
+        for (int i = 0; i < EVENTS; i++) {
+            StreamProcessorJob.IngestedTelemetry record = event("low-" + i, "device-" + i, "temperature", 10.0, 10, HARD_LAG_MS);
+            record.event.getTags().put("tier", "critical");
+            harness.processElement(record, NOW);
+        }
+
+        assertSampled(outputFor("low"), HARD_RATE);
+    }
+
+    private void sendBatch(String prefix, int quality, long lagMs) throws Exception {
+        for (int i = 0; i < EVENTS; i++) {
+            harness.processElement(event(prefix + "-" + i, "device-" + i, "temperature", 10.0, quality, lagMs), NOW);
+        }
+    }
+
+    private List<StreamProcessorJob.IngestedTelemetry> outputFor(String prefix) {
+        List<StreamProcessorJob.IngestedTelemetry> out = harness.extractOutputValues();
+        out.removeIf(record -> !record.event.getEventId().startsWith(prefix + "-"));
+        return out;
+    }
+
+    // Every kept sample carries 1/rate, so the weighted count estimates the original count
+    private static void assertSampled(List<StreamProcessorJob.IngestedTelemetry> kept, double rate) {
+        assertTrue(kept.size() < EVENTS);
+        kept.forEach(record -> assertEquals(1.0 / rate, record.sampleWeight));
+        double weightedCount = kept.stream().mapToDouble(record -> record.sampleWeight).sum();
+        assertEquals(EVENTS, weightedCount, EVENTS * 0.1);
+    }
+
+    private static void assertUnsampled(List<StreamProcessorJob.IngestedTelemetry> kept) {
+        assertEquals(EVENTS, kept.size());
+        kept.forEach(record -> assertEquals(1.0, record.sampleWeight));
+    }
+
+    private static StreamProcessorJob.IngestedTelemetry event(String eventId, String deviceId, String sensorType,
+                                                              double value, int quality, long lagMs) {
+        Telemetry event = new Telemetry();
+        // Real event ids are UUIDs; sequential ids would not hash uniformly
+        event.setEventId(eventId.substring(0, eventId.indexOf('-') + 1)
+                + UUID.nameUUIDFromBytes(eventId.getBytes(StandardCharsets.UTF_8)));
+        event.setDeviceId(deviceId);
+        event.setTimestamp(NOW - lagMs);
+        event.setSensorType(sensorType);
+        event.setValue(value);
+        event.setUnit("unit");
+        event.setQuality(quality);
+        event.setTags(new HashMap<>());
+        return new StreamProcessorJob.IngestedTelemetry(event, NOW - lagMs);
+    }
+}
@@ -12,6 +12,9 @@ public class AggregatedMetric extends SpecificRecordBase implements SpecificReco
   private Map<String, Double> min_metrics;
   private Map<String, Double> max_metrics;
   private long count;
+  private long version;
+  private String scope = "device";
+  private String key = "";
  
 
     // Getters/setters
@@ -78,5 +81,29 @@ public class AggregatedMetric extends SpecificRecordBase implements SpecificReco
     public void setCount(long count) {
         this.count = count;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public void setScope(String scope) {
+        this.scope = scope;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
     
 }
\ No newline at end of file
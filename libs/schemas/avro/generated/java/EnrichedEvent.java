@@ -14,6 +14,7 @@ public class EnrichedEvent extends SpecificRecordBase implements SpecificRecord
   private long processed_timestamp;
   private Double anomaly_score;
   private double quality_score;
+  private double sample_weight = 1.0;
 
   public String getEventId() {
     return event_id;
@@ -94,4 +95,12 @@ public class EnrichedEvent extends SpecificRecordBase implements SpecificRecord
   public void setQualityScore(double quality_score) {
     this.quality_score = quality_score;
   }
+
+  public double getSampleWeight() {
+    return sample_weight;
+  }
+
+  public void setSampleWeight(double sample_weight) {
+    this.sample_weight = sample_weight;
+  }
 }
\ No newline at end of file
@@ -10,4 +10,7 @@ class AggregatedMetric:
     avg_metrics: Dict[str, float]
     min_metrics: Dict[str, float]
     max_metrics: Dict[str, float]
-    count: int
\ No newline at end of file
+    count: int
+    version: int = 0
+    scope: str = "device"
+    key: str = ""
\ No newline at end of file
@@ -19,4 +19,5 @@ class EnrichedEvent:
     device_metadata: DeviceMetadata
     processed_timestamp: int
     anomaly_score: Optional[float] = None
-    quality_score: float = 1.0
\ No newline at end of file
+    quality_score: float = 1.0
+    sample_weight: float = 1.0
\ No newline at end of file
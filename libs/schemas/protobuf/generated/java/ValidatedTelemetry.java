@@ -15,5 +15,6 @@ public class ValidatedTelemetry extends SpecificRecordBase implements SpecificRe
   private Double anomaly_score;
   private double quality_score;
   private boolean valid;
+  private double sample_weight = 1.0;
   // Getters/setters
 }
\ No newline at end of file
@@ -16,4 +16,5 @@ class ValidatedTelemetry:
     processed_timestamp: int
     anomaly_score: Optional[float] = None
     quality_score: float = 1.0
-    valid: bool = True
\ No newline at end of file
+    valid: bool = True
+    sample_weight: float = 1.0
\ No newline at end of file
@@ -9,6 +9,7 @@ NAMESPACE="telemetry-platform"
 if [ -d "apps/flink-jobs" ]; then
   echo "Building Flink jobs..."
   # Placeholder - in real scenario, would build with Maven/Gradle
+  # Reactor build: flink-common must be built with the jobs, not per job pom
   # cd apps/flink-jobs && mvn clean package -DskipTests
   echo "Skipping build (using pre-built images in demo)"
 fi